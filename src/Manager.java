@@ -13,6 +13,7 @@ public class Manager {
 		RmOperations rmOps;
 		String replicaList = "Dorval,DVL,8022,CampusServer 0;Kirkland,KKL,8032,CampusServer 1;Westmount,WST,8042,CampusServer 2";
 		String replicaManagerList = "132.205.93.42,8020;192.168.1.24,8020";
+		int udpPort = 8020;
 		Logger logs = Logger.getLogger("replica-manager");
 		
 		// initialize the logger file
@@ -24,17 +25,20 @@ public class Manager {
 		}
 		
 		// initialize replica manager implementation
-		rmOps = new RmOperations(replicaManagerList, replicaList, logs);
+		rmOps = new RmOperations(replicaManagerList, replicaList, udpPort, logs);
 		
 		// start the udp server
 		try {
-			DatagramSocket udpSocket = new DatagramSocket(8020);
+			DatagramSocket udpSocket = new DatagramSocket(udpPort);
 			byte[] incoming = new byte[10000];
-			logs.info("The UDP server for replica manager is up and running on port 8034");
+			logs.info("The UDP server for replica manager is up and running on port " + udpPort);
 			
 			// start all the replicas
 			rmOps.startReplicas();
 			
+			// take part in the recovery leader lease
+			rmOps.getCoordinator().start();
+			
 			while (true) {
 				DatagramPacket packet = new DatagramPacket(incoming, incoming.length);
 				try {
@@ -0,0 +1,501 @@
+package implementation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import schema.ReplicaManager;
+import schema.UdpPacket;
+
+/**
+ * Coordinates the recovery of replica managers across the network.
+ * <p>
+ * One replica manager holds a lease and acts as the recovery leader. When the RMs fail, they ask the
+ * leader for a recovery plan instead of restarting right away. The leader collects the requests for a
+ * short window and splits them into small groups. Each group restarts together from its own live
+ * sources, and the groups are staggered. The serving RM fetches the snapshot once per group, so every
+ * RM in the group gets the same copy.
+ */
+public class RecoveryCoordinator {
+    // keep logging everything
+    private Logger logs;
+    private RmOperations rmOps;
+    // this replica manager
+    private ReplicaManager self;
+    // whether this replica manager is in the configured list (only then it can lead)
+    private boolean configured;
+    // all the configured replica managers in the network, ordered by their id
+    private List<String> ranking = new ArrayList<>();
+    // current holder of the lease and the time (local clock) at which it expires
+    private String leaseHolder;
+    private long leaseExpiry;
+    // last time (local clock) each RM was heard from, against the RM id as key
+    private HashMap<String, Long> lastSeen = new HashMap<>();
+    // recovery requests collected by the leader for the next plan, against the RM id as key
+    private LinkedHashMap<String, ReplicaManager> pendingRecoveries = new LinkedHashMap<>();
+    // time (local clock) until which each planned RM is busy restarting, against the RM id as key
+    private HashMap<String, Long> restarting = new HashMap<>();
+    // whether the leader has already scheduled the next plan
+    private boolean planScheduled = false;
+    // the earliest time (local clock) the leader can schedule the next restart at
+    private long nextRestart = 0;
+    // number of plans sent by the leader (to make up the plan ids)
+    private int planCount = 0;
+    // whether this RM is waiting for its recovery plan
+    private boolean awaitingPlan = false;
+    // whether this RM has its restart scheduled
+    private boolean restartScheduled = false;
+    // the RM to import the data from, against the campus code as key
+    private HashMap<String, ReplicaManager> importSources = new HashMap<>();
+    // the plan this RM imports the data for, and the number of RMs in it
+    private String importPlan;
+    private int importPlanSize;
+    // snapshots of the local replicas served to other RMs, against the campus code as key
+    private HashMap<String, byte[]> snapshots = new HashMap<>();
+    // the plan each snapshot was fetched for and the number of RMs served with it
+    private HashMap<String, String> snapshotPlans = new HashMap<>();
+    private HashMap<String, Integer> snapshotServed = new HashMap<>();
+    private HashMap<String, Long> snapshotTimes = new HashMap<>();
+    // campus codes whose replica has finished importing its data since the last start
+    private HashSet<String> importedCodes = new HashSet<>();
+    // locks to fetch the snapshot of each campus, against the campus code as key
+    private HashMap<String, Object> snapshotLocks = new HashMap<>();
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    public RecoveryCoordinator(RmOperations rmOps, int udpPort, Logger logs) {
+        this.rmOps = rmOps;
+        this.logs = logs;
+
+        // find this replica manager in the list
+        for (ReplicaManager manager : rmOps.getReplicaManagers()) {
+            if ((manager.getUdpPort() == udpPort) && manager.isLocal())
+                this.self = manager;
+        }
+        this.configured = (this.self != null);
+        if (!this.configured) {
+            // the other RMs do not know this id. so, this RM never claims the lease
+            String host = InetAddress.getLoopbackAddress().getHostAddress();
+            try {
+                host = InetAddress.getLocalHost().getHostAddress();
+            } catch (IOException exception) {
+                // stick with the loopback address
+            }
+            this.self = new ReplicaManager(host, udpPort);
+            this.logs.warning("This replica manager is not in the replica manager list. It will not lead the recovery. id: " + this.self.getId());
+        }
+
+        for (ReplicaManager manager : rmOps.getReplicaManagers()) {
+            if (!this.ranking.contains(manager.getId()))
+                this.ranking.add(manager.getId());
+        }
+        Collections.sort(this.ranking);
+
+        // listen for one full lease before claiming it, so a restarted RM does not take over from a working leader
+        this.leaseExpiry = System.currentTimeMillis() + LEASE_DURATION;
+    }
+
+    // start sending heartbeats and renewing (or claiming) the lease
+    public void start() {
+        this.scheduler.scheduleAtFixedRate(() -> this.runSafely("Heartbeat", this::heartbeat), 0, LEASE_RENEW, TimeUnit.MILLISECONDS);
+    }
+
+    // when the system fails, ask the leader to schedule the restart of the replicas
+    void requestRecovery() {
+        String leader;
+        synchronized (this) {
+            // the request is already with the leader
+            if (this.awaitingPlan || this.restartScheduled) return;
+
+            leader = this.getLeader();
+            if (leader == null)
+                this.restartScheduled = true;
+            else
+                this.awaitingPlan = true;
+        }
+
+        if (leader == null) {
+            this.logs.info("No recovery leader in the network. Restarting the replicas right away.");
+            this.recover(new HashMap<>(), null, 0);
+            return;
+        }
+
+        HashMap<String, Object> body = new HashMap<>();
+        body.put(RmOperations.BODY_RM_ID, this.self.getId());
+        if (leader.equals(this.self.getId()))
+            this.recoveryRequested(body);
+        else
+            this.send(this.findManager(leader), new UdpPacket(RmOperations.RM_REQ_RECOVERY, body));
+
+        // the leader may die before sending the plan
+        this.scheduler.schedule(() -> this.runSafely("Recovery", () -> {
+            synchronized (this) {
+                if (!this.awaitingPlan) return;
+                this.awaitingPlan = false;
+                this.restartScheduled = true;
+            }
+            this.logs.info("No recovery plan from the leader. Restarting the replicas right away.");
+            this.recover(new HashMap<>(), null, 0);
+        }), PLAN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    // when another RM sends its heartbeat
+    synchronized void heartbeatReceived(HashMap<String, Object> body) {
+        this.lastSeen.put((String) body.get(RmOperations.BODY_RM_ID), System.currentTimeMillis());
+    }
+
+    // when another RM announces the lease
+    synchronized void leaseReceived(HashMap<String, Object> body) {
+        String candidate = (String) body.get(RmOperations.BODY_RM_ID);
+        long duration = (Long) body.get(RmOperations.BODY_LEASE);
+        long now = System.currentTimeMillis();
+        this.lastSeen.put(candidate, now);
+
+        // keep the current lease unless it expired or the candidate is ranked lower
+        boolean accept = (this.leaseHolder == null) || (now >= this.leaseExpiry)
+                || this.leaseHolder.equals(candidate) || (this.rankOf(candidate) < this.rankOf(this.leaseHolder));
+        if (!accept) return;
+
+        if (!candidate.equals(this.leaseHolder))
+            this.logs.info("Recovery leader is now " + candidate);
+        this.leaseHolder = candidate;
+        this.leaseExpiry = now + duration;
+    }
+
+    // when an RM (possibly this one) asks the leader for its recovery plan
+    void recoveryRequested(HashMap<String, Object> body) {
+        String id = (String) body.get(RmOperations.BODY_RM_ID);
+        synchronized (this) {
+            // no longer the leader. the RM falls back on its own after the plan timeout
+            if (!this.self.getId().equals(this.getLeader())) {
+                this.logs.info("Not the recovery leader. Dropping the recovery request by " + id);
+                return;
+            }
+
+            // the same RM asking again before its plan is out
+            if (this.pendingRecoveries.containsKey(id)) return;
+
+            this.pendingRecoveries.put(id, this.findManager(id));
+            this.logs.info("Recovery requested by " + id);
+
+            if (this.planScheduled) return;
+            this.planScheduled = true;
+        }
+
+        // wait for the simultaneous failures, so they end up in the same plan
+        this.scheduler.schedule(() -> this.runSafely("Recovery plan", this::sendRecoveryPlans), RECOVERY_WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    // when the leader sends the recovery plan to this RM
+    @SuppressWarnings(value = "unchecked")
+    void planReceived(HashMap<String, Object> body) {
+        long delay = (Long) body.get(RmOperations.BODY_DELAY);
+        HashMap<String, String> sources = (HashMap<String, String>) body.get(RmOperations.BODY_SOURCES);
+        String plan = (String) body.get(RmOperations.BODY_PLAN);
+        int planSize = (Integer) body.get(RmOperations.BODY_PLAN_SIZE);
+
+        synchronized (this) {
+            // already restarting on its own
+            if (!this.awaitingPlan) return;
+            this.awaitingPlan = false;
+            this.restartScheduled = true;
+        }
+
+        HashMap<String, ReplicaManager> importSources = new HashMap<>();
+        for (String code : sources.keySet())
+            importSources.put(code, this.findManager(sources.get(code)));
+
+        this.logs.info("Recovery plan " + plan + " received. Restarting the replicas in " + delay + "ms");
+        this.scheduler.schedule(() -> this.runSafely("Recovery", () -> this.recover(importSources, plan, planSize)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // the RM picked by the leader to import the campus data from (null, if there is none)
+    synchronized ReplicaManager getImportSource(String code) {
+        return this.importSources.get(code);
+    }
+
+    // the body of the import request sent to the picked RM, carrying the plan it belongs to
+    synchronized HashMap<String, Object> getImportBody(String code, HashMap<String, Object> body) {
+        if ((this.importPlan == null) || !this.importSources.containsKey(code))
+            return body;
+
+        HashMap<String, Object> importBody = new HashMap<>(body);
+        importBody.put(RmOperations.BODY_PLAN, this.importPlan);
+        importBody.put(RmOperations.BODY_PLAN_SIZE, this.importPlanSize);
+        return importBody;
+    }
+
+    // the replica has imported its data. the next import goes to all the RMs again
+    synchronized void importCompleted(String code) {
+        this.importSources.remove(code);
+        this.importedCodes.add(code);
+    }
+
+    // fetch the snapshot of the campus fetched for the plan (null, if there is none or it is too old)
+    synchronized byte[] getSnapshot(String plan, String code) {
+        if (!plan.equals(this.snapshotPlans.get(code)))
+            return null;
+
+        // a late RM in the group gets the latest data instead
+        if (System.currentTimeMillis() - this.snapshotTimes.get(code) > SNAPSHOT_MAX_AGE) {
+            this.removeSnapshot(code);
+            return null;
+        }
+        return this.snapshots.get(code);
+    }
+
+    // keep the snapshot of the campus to serve the other RMs in the plan. (replaces the one of an older plan)
+    synchronized void putSnapshot(String plan, String code, byte[] snapshot) {
+        this.snapshots.put(code, snapshot);
+        this.snapshotPlans.put(code, plan);
+        this.snapshotServed.put(code, 0);
+        this.snapshotTimes.put(code, System.currentTimeMillis());
+    }
+
+    // the snapshot is served to one more RM in the plan. drop it once all of them have it
+    synchronized void snapshotServed(String plan, String code, int planSize) {
+        if (!plan.equals(this.snapshotPlans.get(code))) return;
+
+        int served = this.snapshotServed.get(code) + 1;
+        this.snapshotServed.put(code, served);
+        if (served >= planSize)
+            this.removeSnapshot(code);
+    }
+
+    // lock to fetch the snapshot of a campus from the replica once, however many RMs ask for it
+    synchronized Object getSnapshotLock(String code) {
+        return this.snapshotLocks.computeIfAbsent(code, key -> new Object());
+    }
+
+    // let the other RMs know this one is alive. renew the lease if this RM holds it, or claim it once the lease expired
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        boolean leader;
+        synchronized (this) {
+            boolean holder = this.self.getId().equals(this.leaseHolder) && (now < this.leaseExpiry);
+            // the lower the rank, the sooner the RM claims an expired lease
+            boolean claim = this.configured && (now >= this.leaseExpiry + this.rankOf(this.self.getId()) * LEASE_BACKOFF);
+            leader = holder || claim;
+
+            if (claim && !holder)
+                this.logs.info("Claiming the recovery lease");
+            if (leader) {
+                this.leaseHolder = this.self.getId();
+                this.leaseExpiry = now + LEASE_DURATION;
+            }
+        }
+
+        // the lease doubles as the heartbeat of the leader
+        HashMap<String, Object> body = new HashMap<>();
+        body.put(RmOperations.BODY_RM_ID, this.self.getId());
+        UdpPacket packet;
+        if (leader) {
+            body.put(RmOperations.BODY_LEASE, LEASE_DURATION);
+            packet = new UdpPacket(RmOperations.RM_LEASE, body);
+        } else {
+            packet = new UdpPacket(RmOperations.RM_HEARTBEAT, body);
+        }
+        for (ReplicaManager manager : this.rmOps.getReplicaManagers()) {
+            if (!manager.getId().equals(this.self.getId()))
+                this.send(manager, packet);
+        }
+    }
+
+    // split the pending RMs into groups, stagger the groups and pick live RMs as the sources of each group
+    private void sendRecoveryPlans() {
+        List<ReplicaManager> recovering;
+        List<ReplicaManager> healthy = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        long start;
+        int groups;
+        int firstPlan;
+        synchronized (this) {
+            this.planScheduled = false;
+            // lost the lease in the meantime. the RMs fall back on their own after the plan timeout
+            if (!this.self.getId().equals(this.getLeader())) {
+                this.logs.info("Not the recovery leader. Dropping " + this.pendingRecoveries.size() + " recovery requests.");
+                this.pendingRecoveries.clear();
+                return;
+            }
+
+            recovering = new ArrayList<>(this.pendingRecoveries.values());
+            this.pendingRecoveries.clear();
+
+            // only the RMs heard from lately (this one, once its replicas imported their data), and not recovering (now or from an earlier plan)
+            for (String id : this.ranking) {
+                boolean alive = id.equals(this.self.getId()) ? this.isImported() : (now - this.lastSeen.getOrDefault(id, 0L) < HEARTBEAT_TIMEOUT);
+                boolean busy = now < this.restarting.getOrDefault(id, 0L);
+                boolean failed = false;
+                for (ReplicaManager manager : recovering)
+                    failed |= manager.getId().equals(id);
+                if (alive && !busy && !failed)
+                    healthy.add(this.findManager(id));
+            }
+
+            // carry on from the restarts scheduled by the earlier plans
+            groups = (recovering.size() + RECOVERY_GROUP - 1) / RECOVERY_GROUP;
+            start = Math.max(now, this.nextRestart);
+            this.nextRestart = start + groups * RECOVERY_STAGGER;
+            for (int i = 0; i < recovering.size(); i++)
+                this.restarting.put(recovering.get(i).getId(), start + (i / RECOVERY_GROUP) * RECOVERY_STAGGER + RESTART_SETTLE);
+
+            firstPlan = this.planCount + 1;
+            this.planCount += groups;
+        }
+
+        List<String> codes = new ArrayList<>(this.rmOps.getReplicaCodes());
+        Collections.sort(codes);
+
+        for (int group = 0; group < groups; group++) {
+            String plan = this.self.getId() + "#" + (firstPlan + group);
+            List<ReplicaManager> members = recovering.subList(group * RECOVERY_GROUP, Math.min((group + 1) * RECOVERY_GROUP, recovering.size()));
+
+            // spread the campuses over the healthy RMs, shifted per group. (no healthy RM means, ask everyone)
+            HashMap<String, String> sources = new HashMap<>();
+            for (int i = 0; (i < codes.size()) && !healthy.isEmpty(); i++)
+                sources.put(codes.get(i), healthy.get((i + group) % healthy.size()).getId());
+
+            this.logs.info("Sending recovery plan " + plan + " to " + members.size() + " RMs. Sources: " + sources);
+
+            // the members of a group restart together, so they can share the snapshot
+            for (ReplicaManager manager : members) {
+                HashMap<String, Object> body = new HashMap<>();
+                body.put(RmOperations.BODY_DELAY, (start - now) + group * RECOVERY_STAGGER);
+                body.put(RmOperations.BODY_SOURCES, sources);
+                body.put(RmOperations.BODY_PLAN, plan);
+                body.put(RmOperations.BODY_PLAN_SIZE, members.size());
+
+                if (manager.getId().equals(this.self.getId()))
+                    this.planReceived(body);
+                else
+                    this.send(manager, new UdpPacket(RmOperations.RM_RECOVERY_PLAN, body));
+            }
+        }
+    }
+
+    // kill and start all the replicas, importing the data from the given sources
+    private void recover(HashMap<String, ReplicaManager> importSources, String plan, int planSize) {
+        synchronized (this) {
+            this.restartScheduled = false;
+            this.importSources = importSources;
+            this.importPlan = plan;
+            this.importPlanSize = planSize;
+            this.importedCodes.clear();
+        }
+
+        this.rmOps.killReplicas();
+        this.rmOps.startReplicas();
+    }
+
+    // run the scheduled task. an exception would silently cancel it, so log it instead
+    private void runSafely(String task, Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (RuntimeException exception) {
+            this.logs.warning(task + " task failed.\nMessage: " + exception);
+        }
+    }
+
+    // whether all the local replicas have finished importing their data since the last start
+    private boolean isImported() {
+        return this.importedCodes.containsAll(this.rmOps.getReplicaCodes());
+    }
+
+    // drop the snapshot of the campus
+    private void removeSnapshot(String code) {
+        this.snapshots.remove(code);
+        this.snapshotPlans.remove(code);
+        this.snapshotServed.remove(code);
+        this.snapshotTimes.remove(code);
+    }
+
+    // the current leader (null, if the lease expired)
+    private String getLeader() {
+        return (System.currentTimeMillis() < this.leaseExpiry) ? this.leaseHolder : null;
+    }
+
+    private int rankOf(String id) {
+        int rank = this.ranking.indexOf(id);
+        return (rank < 0) ? Integer.MAX_VALUE : rank;
+    }
+
+    // find the replica manager by its id (format: ipAddress,port)
+    private ReplicaManager findManager(String id) {
+        if (id.equals(this.self.getId()))
+            return this.self;
+        for (ReplicaManager manager : this.rmOps.getReplicaManagers()) {
+            if (manager.getId().equals(id))
+                return manager;
+        }
+        String[] params = id.split(",");
+        return new ReplicaManager(params[0], Integer.parseInt(params[1]));
+    }
+
+    // send the packet to the replica manager without waiting for a response
+    private void send(ReplicaManager manager, UdpPacket packet) {
+        InetAddress address = manager.getIpAddress();
+        if (address == null) {
+            this.logs.warning("Could not resolve the address of " + manager.getId());
+            return;
+        }
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            byte[] outgoing = this.serialize(packet);
+            DatagramPacket datagramPacket = new DatagramPacket(outgoing, outgoing.length, address, manager.getUdpPort());
+            socket.send(datagramPacket);
+        } catch (IOException exception) {
+            this.logs.warning("Error sending the packet to " + manager.getId() + "\nMessage: " + exception.getMessage());
+        }
+    }
+
+    private byte[] serialize(Object obj) throws IOException {
+        try(ByteArrayOutputStream b = new ByteArrayOutputStream()){
+            try(ObjectOutputStream o = new ObjectOutputStream(b)){
+                o.writeObject(obj);
+            }
+            return b.toByteArray();
+        }
+    }
+
+    // how long the lease lasts (in milliseconds)
+    static final long LEASE_DURATION = 5000;
+
+    // how often the RMs send their heartbeat, and the leader renews the lease (in milliseconds)
+    static final long LEASE_RENEW = 1000;
+
+    // how long each RM waits per rank before claiming an expired lease (in milliseconds)
+    static final long LEASE_BACKOFF = 2000;
+
+    // how long the RM may go without a heartbeat before the leader stops picking it as a source (in milliseconds)
+    static final long HEARTBEAT_TIMEOUT = 3000;
+
+    // how long the leader collects the recovery requests before sending the plans (in milliseconds)
+    static final long RECOVERY_WINDOW = 1000;
+
+    // gap between the restarts of two groups of recovering RMs (in milliseconds)
+    static final long RECOVERY_STAGGER = 2000;
+
+    // most RMs restarting together from the same snapshots
+    static final int RECOVERY_GROUP = 3;
+
+    // how long the RM serves the same campus snapshot to the RMs of a group (in milliseconds)
+    static final long SNAPSHOT_MAX_AGE = RECOVERY_STAGGER;
+
+    // how long the restarted RM takes to import its data, before the leader picks it as a source (in milliseconds)
+    static final long RESTART_SETTLE = 10000;
+
+    // how long the RM waits for its recovery plan before restarting on its own (in milliseconds)
+    static final long PLAN_TIMEOUT = 10000;
+}
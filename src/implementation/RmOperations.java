@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import schema.Replica;
@@ -20,8 +21,10 @@ public class RmOperations {
     private int failure = 0;
     // keep track of the last failure state (the sequence number)
     private int lastFailedSequence = 1;
+    // schedules the recovery of replica managers across the network
+    private RecoveryCoordinator coordinator;
 
-    public RmOperations(String replicaManagers, String replicas, Logger logs) {
+    public RmOperations(String replicaManagers, String replicas, int udpPort, Logger logs) {
         this.logs = logs;
 
         // parse the replica list (format: name,code,port;)
@@ -43,6 +46,8 @@ public class RmOperations {
             // add to the list
             this.replicaManagers.add(manager);
         }
+
+        this.coordinator = new RecoveryCoordinator(this, udpPort, logs);
     }
 
     // get the replica port number based on the campus code
@@ -51,6 +56,11 @@ public class RmOperations {
         return (replica == null) ? -1 : replica.getUdpPort();
     }
 
+    // campus codes of all the replicas
+    Set<String> getReplicaCodes() {
+        return replicaList.keySet();
+    }
+
     // start the replica servers
     public void startReplicas() {
         this.logs.info("Starting all the replica servers");
@@ -125,7 +135,8 @@ public class RmOperations {
     	for (Map.Entry<String, Replica> replicaEntry : this.replicaList.entrySet()) {
     		Replica replica = replicaEntry.getValue();
     		
-    		if (replica.getProcess().isAlive())
+    		// the replica may have never started
+    		if ((replica.getProcess() != null) && replica.getProcess().isAlive())
     			replica.reset();
     	}
     }
@@ -143,6 +154,11 @@ public class RmOperations {
         return replicaManagers;
     }
 
+    // fetch the recovery coordinator of this replica manager
+    public RecoveryCoordinator getCoordinator() {
+        return coordinator;
+    }
+
     // operation code for listening to request from replica for importing data
     static final int R_REQ_IMPORT = 7;
 
@@ -163,4 +179,34 @@ public class RmOperations {
 
     // key string for sending room records in request body
     static final String BODY_ROOM_RECORD = "rr";
+
+    // operation code for announcing (and renewing) the recovery leader lease to other RMs
+    static final int RM_LEASE = 9;
+
+    // operation code for asking the recovery leader to schedule the restart of replicas
+    static final int RM_REQ_RECOVERY = 10;
+
+    // operation code for the recovery plan sent by the leader to the recovering RM
+    static final int RM_RECOVERY_PLAN = 11;
+
+    // key string for sending the replica manager id (format: ipAddress,port) in request body
+    static final String BODY_RM_ID = "rm";
+
+    // key string for sending the lease duration (in milliseconds) in request body
+    static final String BODY_LEASE = "l";
+
+    // key string for sending the restart delay (in milliseconds) in request body
+    static final String BODY_DELAY = "d";
+
+    // key string for sending the import source of each campus code in request body
+    static final String BODY_SOURCES = "s";
+
+    // operation code for letting the other RMs know this one is alive
+    static final int RM_HEARTBEAT = 12;
+
+    // key string for sending the recovery plan id in request body
+    static final String BODY_PLAN = "p";
+
+    // key string for sending the number of RMs in the recovery plan in request body
+    static final String BODY_PLAN_SIZE = "ps";
 }
@@ -42,6 +42,18 @@ public class UdpThread implements Runnable {
                 case RmOperations.FE_SUCCESS:
                     this.replicaSucceeds(udpPacket.body);
                     return;
+                case RmOperations.RM_HEARTBEAT:
+                    this.rmOps.getCoordinator().heartbeatReceived(udpPacket.body);
+                    return;
+                case RmOperations.RM_LEASE:
+                    this.rmOps.getCoordinator().leaseReceived(udpPacket.body);
+                    return;
+                case RmOperations.RM_REQ_RECOVERY:
+                    this.rmOps.getCoordinator().recoveryRequested(udpPacket.body);
+                    return;
+                case RmOperations.RM_RECOVERY_PLAN:
+                    this.rmOps.getCoordinator().planReceived(udpPacket.body);
+                    return;
                 default:
                     outwards = this.serialize("Error");
                     break;
@@ -70,9 +82,9 @@ public class UdpThread implements Runnable {
     	this.rmOps.incrementFailureCount();
     	
     	if (this.rmOps.isSystemCritical()) {
-    		this.rmOps.killReplicas();
     		this.rmOps.resetFailureCount();
-    		this.rmOps.startReplicas();
+    		// the leader decides when to restart, so the RMs do not recover all at once
+    		this.rmOps.getCoordinator().requestRecovery();
     	}
     }
 
@@ -85,42 +97,83 @@ public class UdpThread implements Runnable {
 
     // when replica sends request to fetch data from other nodes in the network
     // in that case, send a request to other RMs about the data and wait for their responses.
-    @SuppressWarnings(value = "unchecked")
     private byte[] replicaRequestsData(HashMap<String, Object> body) throws IOException {
         HashMap<String, HashMap<Integer, List<TimeSlot>>> mapToSend = new HashMap<>();
+        String code = (String) body.get(RmOperations.BODY_CODE);
+        RecoveryCoordinator coordinator = this.rmOps.getCoordinator();
+        // the RM picked by the leader while recovering (null, if there is none)
+        ReplicaManager source = coordinator.getImportSource(code);
 
         try {
             // keeps track of incoming data
-            List<HashMap<String, HashMap<Integer, List<TimeSlot>>>> data = new ArrayList<>();
+            List<HashMap<String, HashMap<Integer, List<TimeSlot>>>> data;
+
+            if (source != null) {
+                // the picked RM waits 2s for its replica. so, a little more than that
+                data = this.requestData(Collections.singletonList(source), coordinator.getImportBody(code, body), 2500);
+                // the picked RM did not respond. ask all the RMs instead
+                if (data.isEmpty()) {
+                    this.logs.info("No data from " + source.getId() + ". Asking all the Replica Managers.");
+                    data = this.requestData(this.rmOps.getReplicaManagers(), body, 3000);
+                }
+            } else {
+                data = this.requestData(this.rmOps.getReplicaManagers(), body, 3000);
+            }
+
+            // compare all the structure. (to be discussed and implemented)
 
-            // for incoming packets
-            byte[] inBuffer = new byte[10000];
-            DatagramPacket incoming = new DatagramPacket(inBuffer, inBuffer.length);
+            // send the first one in the map
+            if (data.isEmpty())
+                this.logs.warning("No data from the Replica Managers for " + code);
+            else
+                mapToSend = data.get(0);
+        } catch (SocketException exception) {
+            this.logs.warning("Error connecting to other RMs\nMessage: " + exception.getMessage());
+        } catch (IOException exception) {
+            this.logs.warning("Error encoding/parsing the packet.\nMessage: " + exception.getMessage());
+        } finally {
+            // the next import asks all the RMs again
+            coordinator.importCompleted(code);
+        }
+        return this.serialize(mapToSend);
+    }
+
+    // send the import request to the given RMs and wait for their responses (timeout in milliseconds)
+    @SuppressWarnings(value = "unchecked")
+    private List<HashMap<String, HashMap<Integer, List<TimeSlot>>>> requestData(List<ReplicaManager> managers, HashMap<String, Object> body, int timeout) throws IOException {
+        // keeps track of incoming data
+        List<HashMap<String, HashMap<Integer, List<TimeSlot>>>> data = new ArrayList<>();
 
-            // new socket to keep track of everything
-            DatagramSocket socket = new DatagramSocket();
+        // for incoming packets
+        byte[] inBuffer = new byte[10000];
+        DatagramPacket incoming = new DatagramPacket(inBuffer, inBuffer.length);
 
+        // new socket to keep track of everything
+        try (DatagramSocket socket = new DatagramSocket()) {
             // make the packet
             UdpPacket packet = new UdpPacket(RmOperations.RM_REQ_IMPORT, body);
 
-            // make packet and send to all other RMs
+            // make packet and send to the RMs
             byte[] outgoing = this.serialize(packet);
-            for (ReplicaManager manager : this.rmOps.getReplicaManagers()) {
+            int sent = 0;
+            for (ReplicaManager manager : managers) {
+                if (manager.getIpAddress() == null) {
+                    this.logs.warning("Could not resolve the address of " + manager.getId());
+                    continue;
+                }
                 DatagramPacket datagramPacket = new DatagramPacket(outgoing, outgoing.length, manager.getIpAddress(), manager.getUdpPort());
                 socket.send(datagramPacket);
+                sent += 1;
             }
 
-            socket.setSoTimeout(3000);
+            socket.setSoTimeout(timeout);
 
-            while (true) {
+            while (data.size() < sent) {
                 try {
                     socket.receive(incoming);
 
                     HashMap<String, HashMap<Integer, List<TimeSlot>>> inData = (HashMap<String, HashMap<Integer, List<TimeSlot>>>) this.deserialize(incoming.getData());
                     data.add(inData);
-
-                    if (data.size() == 3)
-                        break;
                 } catch (SocketTimeoutException exception) {
                     this.logs.info("Connections to Replica Manager timed out.");
                     break;
@@ -128,32 +181,45 @@ public class UdpThread implements Runnable {
                     this.logs.warning("Could not parse incoming data from Replica Manager.\nMessage: " + exception.getMessage());
                 }
             }
-
-            // compare all the structure. (to be discussed and implemented)
-
-            // send the first one in the map
-            mapToSend = data.iterator().next();
-            
-            socket.close();
-        } catch (SocketException exception) {
-            this.logs.warning("Error connecting to other RMs\nMessage: " + exception.getMessage());
-        } catch (IOException exception) {
-            this.logs.warning("Error encoding/parsing the packet.\nMessage: " + exception.getMessage());
         }
-        return this.serialize(mapToSend);
+
+        return data;
     }
 
     // when another replica manager needs data
     // in that case, send the data request to relevant replica and wait for its response
     private byte[] rmRequestsData(HashMap<String, Object> body) throws IOException {
-        byte[] out = new byte[100000];
         String code = (String) body.get(RmOperations.BODY_CODE);
+        String plan = (String) body.get(RmOperations.BODY_PLAN);
         // get the relevant replica port number
         int port = this.rmOps.getReplicaPort(code);
-        try {
-            // new socket to keep track of the request sequence
-            DatagramSocket socket = new DatagramSocket();
+        RecoveryCoordinator coordinator = this.rmOps.getCoordinator();
+
+        // not part of a recovery plan. always fetch the latest data
+        if (plan == null) {
+            byte[] out = this.exportData(port, body);
+            return (out == null) ? new byte[100000] : out;
+        }
 
+        // the RMs in the same recovery plan ask for the same campus. fetch it from the replica once
+        int planSize = (Integer) body.get(RmOperations.BODY_PLAN_SIZE);
+        synchronized (coordinator.getSnapshotLock(code)) {
+            byte[] snapshot = coordinator.getSnapshot(plan, code);
+            if (snapshot == null) {
+                snapshot = this.exportData(port, body);
+                if (snapshot == null)
+                    return new byte[100000];
+                coordinator.putSnapshot(plan, code, snapshot);
+            }
+            coordinator.snapshotServed(plan, code, planSize);
+            return snapshot;
+        }
+    }
+
+    // ask the replica to export its data (null, if the replica does not respond)
+    private byte[] exportData(int port, HashMap<String, Object> body) {
+        // new socket to keep track of the request sequence
+        try (DatagramSocket socket = new DatagramSocket()) {
             // for incoming data from the socket
             byte[] incoming = new byte[10000];
             DatagramPacket inData = new DatagramPacket(incoming, incoming.length);
@@ -166,19 +232,19 @@ public class UdpThread implements Runnable {
             DatagramPacket outPacket = new DatagramPacket(outgoing, outgoing.length, InetAddress.getByName("localhost"), port);
             socket.send(outPacket);
 
-            // wait for the response
+            // wait for the response. (shorter than the requesting RM waits, so it can ask someone else)
+            socket.setSoTimeout(2000);
             socket.receive(inData);
 
-            out = inData.getData();
-            
-            socket.close();
+            return inData.getData();
+        } catch (SocketTimeoutException exception) {
+            this.logs.warning("The replica on port " + port + " did not respond.");
         } catch (SocketException exception) {
             this.logs.warning("Error connecting to the replica.\nMessage: " + exception.getMessage());
         } catch (IOException exception) {
             this.logs.warning("Error encoding/parsing the packet.\nMessage: " + exception.getMessage());
         }
-
-        return out;
+        return null;
     }
 
     public void start() {
@@ -1,6 +1,8 @@
 package schema;
 
 import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.UnknownHostException;
 
 public class ReplicaManager {
@@ -23,4 +25,21 @@ public class ReplicaManager {
     public int getUdpPort() {
         return udpPort;
     }
+
+    // identifies the replica manager in the network (format: ipAddress,port)
+    public String getId() {
+        return ipAddress + "," + udpPort;
+    }
+
+    // check if the replica manager runs on this host
+    public boolean isLocal() {
+        InetAddress address = this.getIpAddress();
+        if (address == null)
+            return false;
+        try {
+            return address.isLoopbackAddress() || (NetworkInterface.getByInetAddress(address) != null);
+        } catch (SocketException socketException) {
+            return false;
+        }
+    }
 }